@@ -5,9 +5,11 @@ export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
 export PATH=$JAVA_HOME/bin:$PATH
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Retail.java
+javac -d $DIR/../classes $DIR/../src/*.java
 
 #run the java program
 #Use your database name, port number and login
 java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail $USER"_DB" $PGPORT $USER
+#or, to spread the stores over the databases listed in shards.conf
+#java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar Retail -shards $DIR/../shards.conf
 
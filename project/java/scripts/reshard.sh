@@ -0,0 +1,13 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# compile the java program
+javac -d $DIR/../classes $DIR/../src/*.java
+
+#move a store to another shard:  reshard.sh move <storeID> <shard>
+#  (restart running Retail clients afterwards, they route from startup)
+#drop stores a shard does not own: reshard.sh prune
+java -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar ShardRouter $DIR/../shards.conf "$@"
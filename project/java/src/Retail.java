@@ -23,6 +23,8 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.lang.Math;
 
 /**
@@ -34,6 +36,8 @@ public class Retail {
 
    // reference to physical database connection.
    private Connection _connection = null;
+   // shard router when running against several databases, null otherwise.
+   private ShardRouter _router = null;
     private static String userID = "";
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -67,6 +71,34 @@ public class Retail {
       }//end catch
    }//end Retail
 
+   /**
+    * Attaches the shard router this connection belongs to.
+    *
+    * @param router the router holding every shard
+    */
+   public void setRouter(ShardRouter router){
+      this._router = router;
+   }
+
+   /**
+    * @param storeID the store whose rows are needed
+    * @return the connection holding the store's rows
+    */
+   public Retail forStore(int storeID){
+      if (this._router == null)
+         return this;
+      return this._router.route(storeID);
+   }
+
+   /**
+    * @return every connection to fan a cross-store query out to
+    */
+   public List<Retail> allShards(){
+      if (this._router == null)
+         return Collections.singletonList(this);
+      return this._router.shards();
+   }
+
    // Method to calculate euclidean distance between two latitude, longitude pairs. 
    public double calculateDistance (double lat1, double long1, double lat2, double long2){
       double t1 = (lat1 - lat2) * (lat1 - lat2);
@@ -214,6 +246,35 @@ public class Retail {
 	return -1;
    }
 
+   /**
+    * Method to switch autocommit on or off. With autocommit off, several
+    * updates are grouped into one transaction until commit or rollback.
+    *
+    * @param autoCommit true to commit every statement on its own
+    * @throws java.sql.SQLException when the mode could not be changed
+    */
+   public void setAutoCommit(boolean autoCommit) throws SQLException {
+      this._connection.setAutoCommit(autoCommit);
+   }
+
+   /**
+    * Method to commit the current transaction.
+    *
+    * @throws java.sql.SQLException when the commit failed
+    */
+   public void commit() throws SQLException {
+      this._connection.commit();
+   }
+
+   /**
+    * Method to undo the current transaction.
+    *
+    * @throws java.sql.SQLException when the rollback failed
+    */
+   public void rollback() throws SQLException {
+      this._connection.rollback();
+   }
+
    /**
     * Method to close the physical connection if it is open.
     */
@@ -230,15 +291,17 @@ public class Retail {
    /**
     * The main execution method
     *
-    * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
+    * @param args the command line arguments this inclues the <dbname> <port> <user>
+    *             or -shards <shard config>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean sharded = args.length == 2 && args[0].equals("-shards");
+      if (args.length != 3 && !sharded) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Retail.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> | -shards <shard config>");
          return;
       }//end if
 
@@ -248,11 +311,15 @@ public class Retail {
          // use postgres JDBC driver.
          Class.forName ("org.postgresql.Driver").newInstance ();
          // instantiate the Retail object and creates a physical
-         // connection.
-         String dbname = args[0];
-         String dbport = args[1];
-         String user = args[2];
-         esql = new Retail (dbname, dbport, user, "");
+         // connection, or one per shard when sharded.
+         if (sharded) {
+            esql = new ShardRouter (args[1]).home ();
+         } else {
+            String dbname = args[0];
+            String dbport = args[1];
+            String user = args[2];
+            esql = new Retail (dbname, dbport, user, "");
+         }
 
          boolean keepon = true;
          while(keepon) {
@@ -312,7 +379,8 @@ public class Retail {
          try{
             if(esql != null) {
                System.out.print("Disconnecting from database...");
-               esql.cleanup ();
+               for (Retail shard : esql.allShards ())
+                  shard.cleanup ();
                System.out.println("Done\n\nBye !");
             }//end if
          }catch (Exception e) {
@@ -366,7 +434,35 @@ public class Retail {
 
 			String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
 
-         esql.executeUpdate(query);
+         // Users is replicated on every shard; copies reuse the home shard's userID.
+         // Nothing is committed until every insert succeeded, and the home shard
+         // commits last so a failed commit never leaves a user that can log in.
+         List<Retail> shards = esql.allShards();
+         for (Retail shard : shards)
+            shard.setAutoCommit(false);
+         try {
+            esql.executeUpdate(query);
+            if (shards.size() > 1) {
+               int newUserID = esql.getCurrSeqVal("users_userid_seq");
+               String copy = String.format("INSERT INTO USERS (userID, name, password, latitude, longitude, type) VALUES (%d, '%s','%s', %s, %s,'%s')", newUserID, name, password, latitude, longitude, type);
+               for (Retail shard : shards) {
+                  if (shard != esql)
+                     shard.executeUpdate(copy);
+               }
+            }
+            for (Retail shard : shards) {
+               if (shard != esql)
+                  shard.commit();
+            }
+            esql.commit();
+         } catch (SQLException e) {
+            for (Retail shard : shards)
+               shard.rollback();
+            throw e;
+         } finally {
+            for (Retail shard : shards)
+               shard.setAutoCommit(true);
+         }
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -436,7 +532,7 @@ public class Retail {
          System.out.print("\tEnter store ID: ");
          int storeID = Integer.parseInt(in.readLine());
          String query = String.format("SELECT S.storeID FROM Store S WHERE S.storeID = '%d' AND S.managerID = '%d'",storeID, userID);
-         int num = esql.executeQuery(query);
+         int num = esql.forStore(storeID).executeQuery(query);
          if (num > 0){
            return storeID;
          }
@@ -454,9 +550,19 @@ public class Retail {
          System.out.print("\tEnter userID: ");
          int userID = Integer.parseInt(in.readLine());
          String query = String.format("SELECT S.storeId, S.name, calculate_distance(S.latitude, S.longitude, U.latitude, U.longitude) as dist FROM Users U, Store S WHERE U.userId = '%d' AND calculate_distance(S.latitude, S.longitude, U.latitude, U.longitude) < 30", userID);
-         esql.executeQueryAndPrintResult(query);
-         int rowCount = esql.executeQuery(query);
-         System.out.println ("total row(s): " + rowCount);
+         // stores are spread over the shards, so gather them all and merge by distance.
+         List<List<String>> res = new ArrayList<List<String>>();
+         for (Retail shard : esql.allShards())
+            res.addAll(shard.executeQueryAndReturnResult(query));
+         Collections.sort(res, new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+               return Double.compare(Double.parseDouble(a.get(2)), Double.parseDouble(b.get(2)));
+            }
+         });
+         System.out.println("storeid\tname\tdist\t");
+         for (List<String> store : res)
+            System.out.println(store.get(0) + "\t" + store.get(1) + "\t" + store.get(2) + "\t");
+         System.out.println ("total row(s): " + res.size());
       }catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -467,8 +573,9 @@ public class Retail {
          int storeID = Integer.parseInt(in.readLine());
          String query = String.format("SELECT * FROM PRODUCT WHERE storeID = ");
          query += storeID;
-         esql.executeQueryAndPrintResult(query);
-         int rowCount = esql.executeQuery(query);
+         Retail shard = esql.forStore(storeID);
+         shard.executeQueryAndPrintResult(query);
+         int rowCount = shard.executeQuery(query);
          System.out.println ("total row(s): " + rowCount);
       }catch (Exception e) {
          System.err.println(e.getMessage());
@@ -483,9 +590,10 @@ public class Retail {
          System.out.print("\nEnter number of units: ");
          Integer numberOfUnits = in.read();
          boolean correctStore = true;
+         Retail shard = esql.forStore(Integer.parseInt(storeId.trim()));
             //check store validity
          String query1 = String.format("SELECT * FROM Store where storeID = %s", storeId);
-         int result = esql.executeQuery(query1);
+         int result = shard.executeQuery(query1);
          if(result == 0){
             System.out.println("Store not found");
          }
@@ -498,14 +606,14 @@ public class Retail {
          // }
          //check stock
          String query3 = String.format("SELECT numberOfUnits FROM Product WHERE storeID = %s and productName = '%s'", storeId, productName);
-         List<List<String>> units = esql.executeQueryAndReturnResult(query3);
+         List<List<String>> units = shard.executeQueryAndReturnResult(query3);
          if(units.size() != 0){
             System.out.println("Item out of stock");
          }else if(numberOfUnits < units.size()){
             System.out.println("Not enough stock of item");
          }else{
             query3 = String.format("INSERT INTO Orders (storeID, productName, unitsOrdered) VALUES (%s, %s, 2)", storeId, productName);
-            esql.executeUpdate(query3);
+            shard.executeUpdate(query3);
          }
       }catch (Exception e) {
          System.err.println(e.getMessage());
@@ -515,13 +623,26 @@ public class Retail {
       try{
          System.out.print("\tEnter userId: ");
          userID = in.readLine();
-         String query = String.format("SELECT * FROM Orders WHERE customerID = %s ORDER BY orderTime DESC", userID);
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
+         String query = String.format("SELECT * FROM Orders WHERE customerID = %s ORDER BY orderTime DESC LIMIT 5", userID);
+         // each shard returns its five most recent orders with the store name
+         // appended, then the lists are merged by order time.
+         List<List<String>> res = new ArrayList<List<String>>();
+         for (Retail shard : esql.allShards()) {
+            for (List<String> order : shard.executeQueryAndReturnResult(query)) {
+               String storeName = shard.executeQueryAndReturnResult(String.format("SELECT name FROM STORE WHERE storeID = '%s'", order.get(2))).get(0).get(0);
+               order.add(storeName);
+               res.add(order);
+            }
+         }
+         Collections.sort(res, new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+               return b.get(5).compareTo(a.get(5));
+            }
+         });
          System.out.println("\nFive of your most recent orders: ");
          System.out.println("Store ID\tStore Name\t\t\tProduct Name\t\t\tNumber of Units\t\tOrder Time");
-         for(int i = 0; i < 5; i++) {
-            String storeName = esql.executeQueryAndReturnResult(String.format("SELECT name FROM STORE WHERE storeID = '%s'", res.get(i).get(2))).get(0).get(0);
-            System.out.println(res.get(i).get(2) + "\t\t" + storeName + "\t" + res.get(i).get(3) + "\t" + res.get(i).get(4) + "\t\t\t" + res.get(i).get(5));
+         for(int i = 0; i < 5 && i < res.size(); i++) {
+            System.out.println(res.get(i).get(2) + "\t\t" + res.get(i).get(6) + "\t" + res.get(i).get(3) + "\t" + res.get(i).get(4) + "\t\t\t" + res.get(i).get(5));
          }
          System.out.println("\n");
       }catch(Exception e){
@@ -547,14 +668,15 @@ public class Retail {
          System.out.print("\tEnter price per unit: ");
          int pricerPerUnit = Integer.parseInt(in.readLine());
 
+         Retail shard = esql.forStore(storeID);
          String query = String.format("UPDATE Product SET numberOfUnits = '%d', pricePerUnit = '%d' WHERE productName = '%s' AND storeID = '%d'", numberOfUnits, pricerPerUnit, productName, storeID);
-         esql.executeUpdate(query);
+         shard.executeUpdate(query);
 
          String insert_query = String.format("INSERT INTO ProductUpdates(managerID, storeID, productName, updatedOn) VALUES ('%d', '%d', '%s', CURRENT_TIMESTAMP)", userID, storeID, productName);
-         esql.executeUpdate(insert_query);
+         shard.executeUpdate(insert_query);
 
          String query2 = String.format("SELECT * FROM Product WHERE storeID = '%d'", storeID);
-         esql.executeQueryAndPrintResult(query2);
+         shard.executeQueryAndPrintResult(query2);
 
       }catch (Exception e) {
          System.err.println(e.getMessage());
@@ -570,7 +692,15 @@ public class Retail {
            return;
          }
          String query = String.format("SELECT P.productName, P.storeID, P.managerID, P.updateNumber, P.updatedOn FROM ProductUpdates P  WHERE P.storeID IN ( SELECT S.storeID FROM Store S WHERE S.managerID = %s) ORDER BY P.updatedOn DESC", userID);
-         List<List<String>> result = esql.executeQueryAndReturnResult(query);
+         // the manager's stores may live on several shards; merge by update time.
+         List<List<String>> result = new ArrayList<List<String>>();
+         for (Retail shard : esql.allShards())
+            result.addAll(shard.executeQueryAndReturnResult(query));
+         Collections.sort(result, new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+               return b.get(4).compareTo(a.get(4));
+            }
+         });
          System.out.println("Product Name\n\tStore ID\t\tManager ID\tUpdate Number\tUpdated ON");
          for(int i = 0; i < result.size(); i++) {
             System.out.println(result.get(i).get(0) + "\t" + result.get(i).get(1) + "\t\t" + result.get(i).get(2)  + "\t\t" + result.get(i).get(3)  + "\t\t" + result.get(i).get(4));
@@ -593,7 +723,7 @@ public class Retail {
            return;
          }
          String query = String.format("SELECT productName, COUNT(*) FROM Orders WHERE storeID = '%d' GROUP BY productName ORDER BY COUNT(*) DESC LIMIT 5", storeID);
-         esql.executeQueryAndPrintResult(query);
+         esql.forStore(storeID).executeQueryAndPrintResult(query);
 
       }catch (Exception e) {
          System.err.println(e.getMessage());
@@ -612,7 +742,7 @@ public class Retail {
            return;
          }
          String query = String.format("SELECT customerID, COUNT(*) FROM Orders WHERE storeID = '%d' GROUP BY customerID ORDER BY COUNT(*) DESC LIMIT 5", storeID);
-         esql.executeQueryAndPrintResult(query);
+         esql.forStore(storeID).executeQueryAndPrintResult(query);
       }catch (Exception e) {
          System.err.println(e.getMessage());
       }
@@ -637,8 +767,9 @@ public class Retail {
          System.out.print("\n Input Warehouse ID: ");
          String warehouseID = in.readLine();
          
+         Retail shard = esql.forStore(storeID);
          String query = String.format("SELECT * FROM Product P WHERE P.productName = '%s'", productName);
-         List<List<String>> res = esql.executeQueryAndReturnResult(query);
+         List<List<String>> res = shard.executeQueryAndReturnResult(query);
          if(res.size() <= 0){
             System.out.println("Product is not at given store");
          }
@@ -646,7 +777,7 @@ public class Retail {
             "INSERT INTO ProductSupplyRequests (managerID, warehouseID, storeID, productName, unitsRequested) VALUES (%d, %s, %s, '%s', %s)",
             userID, warehouseID, storeID, productName, numberProductsNeeded
          );
-         esql.executeUpdate(query);
+         shard.executeUpdate(query);
       }catch (Exception e) {
          System.err.println(e.getMessage());
       }
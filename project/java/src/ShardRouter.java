@@ -0,0 +1,352 @@
+/*
+ * Store Shard Router
+ * ==================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * This class maps storeIDs to the Postgres database (shard) that holds the
+ * store's rows in Store, Product, Orders, ProductSupplyRequests and
+ * ProductUpdates. Users and Warehouse are replicated on every shard.
+ *
+ * The shard configuration file has one entry per line:
+ *
+ *    shard <name> <dbname> <port> <user>
+ *    range <firstStoreID> <lastStoreID> <name>
+ *    store <storeID> <name>
+ *
+ * A store entry pins a single store and wins over any range; the last pin
+ * for a store wins. Stores outside every range and pin are hashed over
+ * the shards in the order they are declared. The first shard declared is
+ * the home shard, which owns the Users sequence.
+ *
+ * Run as a program, this class is the resharding tool:
+ *
+ *    java ShardRouter <config> move <storeID> <shard>
+ *    java ShardRouter <config> prune
+ *
+ * Retail clients read the configuration once at startup, so running
+ * clients must be restarted after a move.
+ */
+public class ShardRouter {
+
+   // shard connections keyed by shard name, in declaration order.
+   private Map<String, Retail> _shards = new LinkedHashMap<String, Retail>();
+   private List<int[]> _ranges = new ArrayList<int[]>();
+   private List<String> _rangeShards = new ArrayList<String>();
+   private Map<Integer, String> _pins = new HashMap<Integer, String>();
+   private String _configFile;
+
+   /**
+    * Reads the shard configuration and connects to every shard.
+    *
+    * @param configFile path of the shard configuration file
+    * @throws java.sql.SQLException when failed to make a connection.
+    * @throws java.io.IOException when the configuration cannot be read
+    */
+   public ShardRouter(String configFile) throws SQLException, IOException {
+      this._configFile = configFile;
+      BufferedReader reader = new BufferedReader(new FileReader(new File(configFile)));
+      try{
+         String line;
+         int lineNo = 0;
+         while ((line = reader.readLine()) != null){
+            ++lineNo;
+            int comment = line.indexOf('#');
+            if (comment >= 0)
+               line = line.substring(0, comment);
+            line = line.trim();
+            if (line.isEmpty())
+               continue;
+            String[] f = line.split("\\s+");
+            if (f[0].equals("shard") && f.length == 5){
+               Retail shard = new Retail(f[2], f[3], f[4], "");
+               shard.setRouter(this);
+               this._shards.put(f[1], shard);
+            }else if (f[0].equals("range") && f.length == 4){
+               this._ranges.add(new int[] {Integer.parseInt(f[1]), Integer.parseInt(f[2])});
+               this._rangeShards.add(f[3]);
+            }else if (f[0].equals("store") && f.length == 3){
+               this._pins.put(Integer.parseInt(f[1]), f[2]);
+            }else{
+               throw new IOException(configFile + ":" + lineNo + ": unrecognized entry: " + line);
+            }//end if
+         }//end while
+      }finally{
+         reader.close();
+      }//end try
+      if (this._shards.isEmpty())
+         throw new IOException(configFile + ": no shards declared");
+      for (String name : this._rangeShards)
+         shard(name);
+      for (String name : this._pins.values())
+         shard(name);
+   }//end ShardRouter
+
+   /**
+    * @param name shard name from the configuration
+    * @return the shard with the given name
+    * @throws java.sql.SQLException when no such shard is declared
+    */
+   public Retail shard(String name) throws SQLException {
+      Retail shard = this._shards.get(name);
+      if (shard == null)
+         throw new SQLException("Unknown shard: " + name);
+      return shard;
+   }
+
+   /**
+    * @return the shard holding the Users sequence
+    */
+   public Retail home(){
+      return this._shards.values().iterator().next();
+   }
+
+   /**
+    * @return every shard, home shard first
+    */
+   public List<Retail> shards(){
+      return new ArrayList<Retail>(this._shards.values());
+   }
+
+   /**
+    * Resolves the shard that owns a store.
+    *
+    * @param storeID the store to route
+    * @return name of the shard holding the store's rows
+    */
+   public String shardNameFor(int storeID){
+      String pinned = this._pins.get(storeID);
+      if (pinned != null)
+         return pinned;
+      for (int i = 0; i < this._ranges.size(); ++i){
+         int[] range = this._ranges.get(i);
+         if (storeID >= range[0] && storeID <= range[1])
+            return this._rangeShards.get(i);
+      }//end for
+      List<String> names = new ArrayList<String>(this._shards.keySet());
+      int n = names.size();
+      return names.get(((storeID % n) + n) % n);
+   }
+
+   /**
+    * @param storeID the store to route
+    * @return the shard holding the store's rows
+    */
+   public Retail route(int storeID){
+      return this._shards.get(shardNameFor(storeID));
+   }
+
+   // store-keyed tables in foreign key order, with the columns to copy.
+   // Serial keys are copied unchanged; create_shards.sh gives every shard
+   // its own sequence stride so they cannot collide on the target.
+   private static final String[][] STORE_TABLES = {
+      {"Store", "storeID, name, latitude, longitude, managerID, dateEstablished"},
+      {"Product", "storeID, productName, numberOfUnits, pricePerUnit"},
+      {"Orders", "orderNumber, customerID, storeID, productName, unitsOrdered, orderTime"},
+      {"ProductSupplyRequests", "requestNumber, managerID, warehouseID, storeID, productName, unitsRequested"},
+      {"ProductUpdates", "updateNumber, managerID, storeID, productName, updatedOn"}
+   };
+
+   /**
+    * Moves all rows of a store to another shard and pins the store there.
+    * The store tables on the source are locked against writes for the
+    * whole move, and the source rows are deleted in that same transaction
+    * after the copy is committed on the target and the pin is written, so
+    * an interrupted move leaves a duplicate rather than losing data.
+    * Running clients keep the routing they read at startup and must be
+    * restarted after a move.
+    *
+    * @param storeID the store to move
+    * @param targetName shard to move the store to
+    * @throws java.sql.SQLException when the move failed
+    * @throws java.io.IOException when the pin cannot be written
+    */
+   public void moveStore(int storeID, String targetName) throws SQLException, IOException {
+      Retail source = route(storeID);
+      Retail target = shard(targetName);
+      if (source == target){
+         System.out.println("Store " + storeID + " is already on shard " + targetName);
+         return;
+      }//end if
+      String exists = String.format("SELECT storeID FROM Store WHERE storeID = %d", storeID);
+      if (source.executeQuery(exists) == 0)
+         throw new SQLException("Store " + storeID + " not found on shard " + shardNameFor(storeID));
+      if (target.executeQuery(exists) > 0)
+         throw new SQLException("Store " + storeID + " already exists on shard " + targetName);
+
+      source.setAutoCommit(false);
+      target.setAutoCommit(false);
+      try{
+         // SHARE mode lets readers through but blocks every write until the
+         // source transaction ends.
+         StringBuilder tables = new StringBuilder();
+         for (String[] table : STORE_TABLES){
+            if (tables.length() > 0)
+               tables.append(", ");
+            tables.append(table[0]);
+         }//end for
+         source.executeUpdate("LOCK TABLE " + tables + " IN SHARE MODE");
+
+         for (String[] table : STORE_TABLES){
+            List<List<String>> rows = source.executeQueryAndReturnResult(
+               String.format("SELECT %s FROM %s WHERE storeID = %d", table[1], table[0], storeID));
+            for (List<String> row : rows)
+               target.executeUpdate(String.format("INSERT INTO %s (%s) VALUES (%s)", table[0], table[1], sqlValues(row)));
+            System.out.println(table[0] + ": " + rows.size() + " row(s) copied");
+         }//end for
+         target.commit();
+
+         pinStore(storeID, targetName);
+         deleteStoreRows(source, storeID);
+         source.commit();
+      }catch (SQLException e){
+         target.rollback();
+         source.rollback();
+         throw e;
+      }catch (IOException e){
+         source.rollback();
+         throw e;
+      }finally{
+         target.setAutoCommit(true);
+         source.setAutoCommit(true);
+      }//end try
+   }//end moveStore
+
+   /**
+    * Deletes from every shard the stores that are routed to another shard
+    * which already holds them. Used after loading the full data set into
+    * each shard. A store whose routed shard does not have it is reported
+    * and kept, so a config edit never deletes a store's only copy.
+    *
+    * @throws java.sql.SQLException when a delete failed
+    */
+   public void prune() throws SQLException {
+      for (Map.Entry<String, Retail> entry : this._shards.entrySet()){
+         List<List<String>> stores = entry.getValue().executeQueryAndReturnResult("SELECT storeID FROM Store");
+         int removed = 0;
+         int skipped = 0;
+         for (List<String> store : stores){
+            int storeID = Integer.parseInt(store.get(0).trim());
+            String owner = shardNameFor(storeID);
+            if (owner.equals(entry.getKey()))
+               continue;
+            if (shard(owner).executeQuery(String.format("SELECT storeID FROM Store WHERE storeID = %d", storeID)) > 0){
+               deleteStore(entry.getValue(), storeID);
+               ++removed;
+            }else{
+               System.out.println("Store " + storeID + " is routed to shard " + owner + " but only found on shard " + entry.getKey() + "; kept");
+               ++skipped;
+            }//end if
+         }//end for
+         System.out.println("Shard " + entry.getKey() + ": " + (stores.size() - removed) + " store(s) kept, " + removed + " removed, " + skipped + " misrouted");
+      }//end for
+   }//end prune
+
+   // deletes a store's rows from one shard in a single transaction.
+   private static void deleteStore(Retail shard, int storeID) throws SQLException {
+      shard.setAutoCommit(false);
+      try{
+         deleteStoreRows(shard, storeID);
+         shard.commit();
+      }catch (SQLException e){
+         shard.rollback();
+         throw e;
+      }finally{
+         shard.setAutoCommit(true);
+      }//end try
+   }//end deleteStore
+
+   // deletes a store's rows inside the caller's transaction.
+   private static void deleteStoreRows(Retail shard, int storeID) throws SQLException {
+      for (int i = STORE_TABLES.length - 1; i >= 0; --i)
+         shard.executeUpdate(String.format("DELETE FROM %s WHERE storeID = %d", STORE_TABLES[i][0], storeID));
+   }
+
+   // appends a pin for the store to the configuration and routes it there.
+   private void pinStore(int storeID, String name) throws IOException {
+      FileWriter writer = new FileWriter(this._configFile, true);
+      try{
+         writer.write("store " + storeID + " " + name + "\n");
+      }finally{
+         writer.close();
+      }//end try
+      this._pins.put(storeID, name);
+   }
+
+   // renders a record as a list of SQL literals.
+   private static String sqlValues(List<String> row){
+      StringBuilder values = new StringBuilder();
+      for (String value : row){
+         if (values.length() > 0)
+            values.append(", ");
+         if (value == null)
+            values.append("NULL");
+         else
+            values.append("'").append(value.replace("'", "''")).append("'");
+      }//end for
+      return values.toString();
+   }
+
+   /**
+    * Method to close every shard connection.
+    */
+   public void cleanup(){
+      for (Retail shard : this._shards.values())
+         shard.cleanup();
+   }//end cleanup
+
+   /**
+    * The resharding tool
+    *
+    * @param args <config> move <storeID> <shard> | <config> prune
+    */
+   public static void main (String[] args) {
+      boolean move = args.length == 4 && args[1].equals("move");
+      boolean prune = args.length == 2 && args[1].equals("prune");
+      if (!move && !prune) {
+         System.err.println (
+            "Usage: " +
+            "java [-classpath <classpath>] " +
+            ShardRouter.class.getName () +
+            " <config> move <storeID> <shard> | <config> prune");
+         return;
+      }//end if
+
+      ShardRouter router = null;
+      try{
+         // use postgres JDBC driver.
+         Class.forName ("org.postgresql.Driver").newInstance ();
+         router = new ShardRouter(args[0]);
+         if (move)
+            router.moveStore(Integer.parseInt(args[2]), args[3]);
+         else
+            router.prune();
+      }catch(Exception e) {
+         System.err.println (e.getMessage ());
+      }finally{
+         if (router != null)
+            router.cleanup();
+      }//end try
+   }//end main
+
+}//end ShardRouter
@@ -0,0 +1,22 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+CONF=$DIR/../../java/shards.conf
+NSHARDS=$(awk '$1 == "shard"' $CONF | wc -l)
+
+# load the full data set into every shard listed in the config
+I=0
+awk '$1 == "shard" { print $3, $4, $5 }' $CONF | while read DB PORT DBUSER; do
+  psql -h localhost -p $PORT -U $DBUSER $DB < $DIR/../src/create_tables.sql
+  psql -h localhost -p $PORT -U $DBUSER $DB < $DIR/../src/create_indexes.sql
+  psql -h localhost -p $PORT -U $DBUSER $DB < $DIR/../src/load_data.sql
+  # shard I hands out base+I, base+I+NSHARDS, ... so serial keys stay
+  # unique across shards and survive a store move unchanged
+  psql -h localhost -p $PORT -U $DBUSER $DB -c "
+    ALTER SEQUENCE orders_orderNumber_seq INCREMENT BY $NSHARDS RESTART $((501 + I));
+    ALTER SEQUENCE productsupplyrequests_requestNumber_seq INCREMENT BY $NSHARDS RESTART $((11 + I));
+    ALTER SEQUENCE productupdates_updateNumber_seq INCREMENT BY $NSHARDS RESTART $((51 + I));"
+  I=$((I + 1))
+done
+
+# then keep only the stores each shard owns
+$DIR/../../java/scripts/reshard.sh prune